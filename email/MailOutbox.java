@@ -0,0 +1,735 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A disk backed outbox for messages that have to be sent, but that the caller
+ * does not want to wait for. {@link #enqueue(Message)} appends the message to
+ * a journal file and returns its id straight away. A background dispatcher
+ * hands the messages to a {@link PooledMailSender} and records in the journal
+ * which of them were sent.
+ *
+ * The dispatcher
+ * <ul>
+ * <li>retries failed messages with an exponential backoff, and gives up after
+ * maxAttempts</li>
+ * <li>sends at most ratePerHost messages per second to the same recipient
+ * domain</li>
+ * <li>has at most maxConcurrentSends messages in flight</li>
+ * </ul>
+ *
+ * The messages that can be sent are kept in a queue per recipient domain, and
+ * the domains in a queue ordered by the time their next message may be sent.
+ * Messages waiting for a retry are kept in a queue ordered by their retry
+ * time, so that the dispatcher only looks at the messages it can send.
+ *
+ * When the outbox is opened again after a restart, the journal is replayed and
+ * only the messages that were not sent yet are dispatched. Once enough
+ * messages have been sent, the dispatcher compacts the journal by rewriting it
+ * with the next message id and the pending messages only. The Message-ID of a
+ * message is kept across retries and restarts, so that the rare message sent
+ * twice (sent, but the process stopped before the journal was updated, or
+ * still being sent when {@link #close(long)} gave up waiting) can be
+ * recognised by the receiver.
+ *
+ * JavaMail waits forever for a server that stops answering, unless the
+ * session sets mail.smtp.connectiontimeout and mail.smtp.timeout. Without
+ * them a hung server keeps messages in flight until the close timeout.
+ *
+ * Usage :
+ *
+ * <pre>
+ * Properties props = new Properties();
+ * props.put("mail.smtp.host", "smtp.example.org");
+ * props.put("mail.smtp.connectiontimeout", "10000");
+ * props.put("mail.smtp.timeout", "10000");
+ * Session session = Session.getInstance(props);
+ * PooledMailSender sender = new PooledMailSender(session, 4, 1000, 100);
+ * sender.start();
+ * try (MailOutbox outbox = new MailOutbox(new File("outbox.journal"), session, sender)) {
+ *     outbox.open();
+ *     long id = outbox.enqueue(message);
+ * }
+ * </pre>
+ */
+public class MailOutbox implements AutoCloseable {
+
+    private static final byte ENQUEUED = 1;
+
+    private static final byte SENT = 2;
+
+    private static final byte FAILED = 3;
+
+    /**
+     * The id the next enqueued message gets, written first by a compaction so
+     * that ids are not reused once all the messages in the journal were sent
+     */
+    private static final byte NEXT_ID = 4;
+
+    private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How far behind its schedule a domain may be and still catch up, so that
+     * rates above one message per millisecond are reached although the
+     * dispatcher sleeps for whole milliseconds
+     */
+    private static final long MAX_CATCH_UP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 30000;
+
+    private final File journalFile;
+
+    private final Session session;
+
+    private final PooledMailSender sender;
+
+    private int maxConcurrentSends = 4;
+
+    private double ratePerHost = 10;
+
+    private long initialBackoffMillis = 1000;
+
+    private long maxBackoffMillis = 5 * 60 * 1000;
+
+    private int maxAttempts = 10;
+
+    private int compactThreshold = 1000;
+
+    private boolean syncOnEnqueue = false;
+
+    /**
+     * The messages not sent yet, in the order they were enqueued. Guarded by
+     * the outbox itself, like the rest of the mutable state below.
+     */
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+
+    /**
+     * The recipient domains of the messages, by name. Domains without
+     * messages are dropped once their next send time has passed.
+     */
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    /**
+     * The recipient domains with messages that can be sent, ordered by the
+     * time their next message may be sent
+     */
+    private final PriorityQueue<Host> readyHosts = new PriorityQueue<>(16, new Comparator<Host>() {
+        @Override
+        public int compare(Host first, Host second) {
+            return Long.compare(first.nextSendAt, second.nextSendAt);
+        }
+    });
+
+    /**
+     * The messages waiting for a retry, ordered by the time of the retry
+     */
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            return Long.compare(first.nextAttemptAt, second.nextAttemptAt);
+        }
+    });
+
+    /**
+     * The messages handed to the sender and not sent or failed yet
+     */
+    private final Set<Entry> inFlight = new HashSet<>();
+
+    private FileOutputStream journalOutputStream;
+
+    private DataOutputStream journal;
+
+    private long nextId = 1;
+
+    private int completedSinceCompaction;
+
+    /**
+     * The time, from {@link System#nanoTime()}, at which the domains without
+     * messages are next looked for
+     */
+    private long nextIdleHostSweepAt;
+
+    private boolean running;
+
+    private Thread dispatcher;
+
+    /**
+     * Why the dispatcher stopped, if it stopped before the outbox was closed
+     */
+    private RuntimeException dispatcherFailure;
+
+    public MailOutbox(File journalFile, Session session, PooledMailSender sender) {
+        this.journalFile = journalFile;
+        this.session = session;
+        this.sender = sender;
+    }
+
+    /**
+     * Replay the journal, if any, and start dispatching the pending messages
+     */
+    public synchronized void open() throws IOException {
+        if (running) {
+            return;
+        }
+        // start from the journal alone, not from what was left by a previous open
+        pending.clear();
+        hosts.clear();
+        readyHosts.clear();
+        waiting.clear();
+        inFlight.clear();
+        completedSinceCompaction = 0;
+        nextIdleHostSweepAt = System.nanoTime() + IDLE_WAIT_NANOS;
+        dispatcherFailure = null;
+        replay();
+        for (Entry entry : pending.values()) {
+            schedule(entry);
+        }
+        openJournal();
+        running = true;
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "mail-outbox-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        if (!pending.isEmpty()) {
+            System.out.println("Resuming " + pending.size() + " pending messages from " + journalFile);
+        }
+    }
+
+    /**
+     * Append a message to the outbox. Returns the id of the message in the
+     * outbox.
+     */
+    public long enqueue(Message message) throws IOException, MessagingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.saveChanges();
+        message.writeTo(bytes);
+        String host = hostOf(message);
+        synchronized (this) {
+            if (dispatcherFailure != null) {
+                throw new IllegalStateException("The outbox dispatcher stopped", dispatcherFailure);
+            }
+            if (!running) {
+                throw new IllegalStateException("The outbox is not open");
+            }
+            Entry entry = new Entry(nextId++, host, bytes.toByteArray());
+            writeEnqueued(journal, entry);
+            if (syncOnEnqueue) {
+                journalOutputStream.getChannel().force(false);
+            }
+            pending.put(entry.id, entry);
+            schedule(entry);
+            notifyAll();
+            return entry.id;
+        }
+    }
+
+    /**
+     * The number of messages not sent yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void dispatch() {
+        try {
+            while (dispatchReady()) {
+                compactIfDue();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand the messages that can be sent to the sender and wait until more can
+     * be sent, or the journal is due for a compaction. Returns false once the
+     * dispatcher should stop.
+     */
+    private synchronized boolean dispatchReady() throws InterruptedException {
+        if (!running || dispatcherFailure != null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        while (!waiting.isEmpty() && waiting.peek().nextAttemptAt <= now) {
+            schedule(waiting.poll());
+        }
+        boolean senderFull = false;
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerHost);
+        while (inFlight.size() < maxConcurrentSends && !readyHosts.isEmpty()
+                && readyHosts.peek().nextSendAt <= now) {
+            Host host = readyHosts.poll();
+            Entry entry = host.entries.peek();
+            try {
+                if (hand(entry)) {
+                    host.entries.poll();
+                    host.nextSendAt = Math.max(host.nextSendAt, now - MAX_CATCH_UP_NANOS) + interval;
+                } else {
+                    senderFull = true;
+                }
+            } catch (MessagingException e) {
+                e.printStackTrace();
+                host.entries.poll();
+                complete(entry, FAILED);
+            }
+            if (!host.entries.isEmpty()) {
+                readyHosts.add(host);
+            }
+            if (senderFull || dispatcherFailure != null) {
+                break;
+            }
+        }
+        if (now >= nextIdleHostSweepAt) {
+            removeIdleHosts(now);
+            nextIdleHostSweepAt = now + IDLE_WAIT_NANOS;
+        }
+        if (isCompactionDue()) {
+            return true;
+        }
+        long wakeUpAt = now + IDLE_WAIT_NANOS;
+        if (!waiting.isEmpty()) {
+            wakeUpAt = Math.min(wakeUpAt, waiting.peek().nextAttemptAt);
+        }
+        // while the in flight limit is reached, the listeners wake the dispatcher up
+        if (inFlight.size() < maxConcurrentSends && !readyHosts.isEmpty()) {
+            // when the sender queue is full, try again a little later
+            long retryAt = senderFull ? now + TimeUnit.MILLISECONDS.toNanos(10) : now;
+            wakeUpAt = Math.min(wakeUpAt, Math.max(readyHosts.peek().nextSendAt, retryAt));
+        }
+        wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUpAt - now)));
+        return true;
+    }
+
+    /**
+     * Forget the domains without messages whose next send time has passed, a
+     * new message to them can be sent straight away anyway
+     */
+    private void removeIdleHosts(long now) {
+        Iterator<Host> iterator = hosts.values().iterator();
+        while (iterator.hasNext()) {
+            Host host = iterator.next();
+            if (host.entries.isEmpty() && host.nextSendAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Add a message that can be sent to the queue of its recipient domain
+     */
+    private void schedule(Entry entry) {
+        Host host = hosts.get(entry.host);
+        if (host == null) {
+            host = new Host(System.nanoTime());
+            hosts.put(entry.host, host);
+        }
+        if (host.entries.isEmpty()) {
+            readyHosts.add(host);
+        }
+        host.entries.add(entry);
+    }
+
+    /**
+     * Hand a message to the sender. Returns false if the sender did not accept
+     * it.
+     */
+    private boolean hand(final Entry entry) throws MessagingException {
+        Message message = new MimeMessage(session, new ByteArrayInputStream(entry.content)) {
+            @Override
+            protected void updateMessageID() {
+                // keep the Message-ID the message was enqueued with
+            }
+        };
+        boolean accepted;
+        try {
+            accepted = sender.offer(message, new PooledMailSender.Listener() {
+                @Override
+                public void onSent(Message message) {
+                    synchronized (MailOutbox.this) {
+                        if (inFlight.remove(entry)) {
+                            complete(entry, SENT);
+                            MailOutbox.this.notifyAll();
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailed(Message message, MessagingException e) {
+                    synchronized (MailOutbox.this) {
+                        if (inFlight.remove(entry)) {
+                            retryLater(entry, e);
+                            MailOutbox.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (IllegalStateException e) {
+            System.out.println("Stopping the outbox dispatcher, the mail sender does not accept messages");
+            e.printStackTrace();
+            dispatcherFailure = e;
+            return false;
+        }
+        if (accepted) {
+            entry.message = message;
+            inFlight.add(entry);
+        }
+        return accepted;
+    }
+
+    private void retryLater(Entry entry, MessagingException e) {
+        entry.message = null;
+        entry.attempts++;
+        if (entry.attempts >= maxAttempts) {
+            System.out.println("Giving up on message " + entry.id + " after " + entry.attempts + " attempts");
+            e.printStackTrace();
+            complete(entry, FAILED);
+            return;
+        }
+        long backoff = initialBackoffMillis << Math.min(entry.attempts - 1, 30);
+        entry.nextAttemptAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(backoff, maxBackoffMillis));
+        waiting.add(entry);
+    }
+
+    private void complete(Entry entry, byte status) {
+        pending.remove(entry.id);
+        try {
+            journal.writeByte(status);
+            journal.writeLong(entry.id);
+            journal.flush();
+            completedSinceCompaction++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeEnqueued(DataOutputStream out, Entry entry) throws IOException {
+        byte[] host = entry.host.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(ENQUEUED);
+        out.writeLong(entry.id);
+        out.writeShort(host.length);
+        out.write(host);
+        out.writeInt(entry.content.length);
+        out.write(entry.content);
+        out.flush();
+    }
+
+    /**
+     * Read the journal, keeping the messages that were not sent or given up
+     * on. A record cut short by a crash is removed from the end of the file.
+     */
+    private void replay() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                int status = in.read();
+                if (status < 0) {
+                    break;
+                }
+                long id = in.readLong();
+                long recordLength = 1 + 8;
+                if (status == ENQUEUED) {
+                    byte[] host = new byte[in.readUnsignedShort()];
+                    in.readFully(host);
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    pending.put(id, new Entry(id, new String(host, StandardCharsets.UTF_8), content));
+                    recordLength += 2 + host.length + 4 + content.length;
+                    nextId = Math.max(nextId, id + 1);
+                } else if (status == SENT || status == FAILED) {
+                    pending.remove(id);
+                } else if (status == NEXT_ID) {
+                    nextId = Math.max(nextId, id);
+                } else {
+                    throw new IOException("Corrupt outbox journal " + journalFile + " at offset " + validLength);
+                }
+                validLength += recordLength;
+            }
+        } catch (EOFException e) {
+            System.out.println("Removing incomplete record at the end of " + journalFile);
+            try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+                file.setLength(validLength);
+            }
+        }
+    }
+
+    private void openJournal() throws IOException {
+        journalOutputStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalOutputStream));
+    }
+
+    private boolean isCompactionDue() {
+        return completedSinceCompaction >= compactThreshold && completedSinceCompaction > pending.size();
+    }
+
+    /**
+     * Rewrite the journal with the next message id and the pending messages
+     * only, if enough messages were sent since the last time. Runs on the
+     * dispatcher thread. The compacted file is written and forced to disk
+     * without holding the outbox, only the records appended in the meantime
+     * are copied over while holding it. If the new file can not be swapped in,
+     * the outbox keeps appending to the old journal.
+     */
+    private void compactIfDue() {
+        File compacted = new File(journalFile.getPath() + ".compact");
+        try {
+            List<Entry> entries;
+            long firstFreeId;
+            long copiedLength;
+            synchronized (this) {
+                if (!running || !isCompactionDue()) {
+                    return;
+                }
+                completedSinceCompaction = 0;
+                entries = new ArrayList<>(pending.values());
+                firstFreeId = nextId;
+                journal.flush();
+                copiedLength = journalOutputStream.getChannel().size();
+            }
+            try (FileOutputStream fos = new FileOutputStream(compacted)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeByte(NEXT_ID);
+                out.writeLong(firstFreeId);
+                for (Entry entry : entries) {
+                    writeEnqueued(out, entry);
+                }
+                out.flush();
+                fos.getChannel().force(true);
+            }
+            synchronized (this) {
+                journal.flush();
+                try (FileInputStream in = new FileInputStream(journalFile);
+                        FileOutputStream out = new FileOutputStream(compacted, true)) {
+                    FileChannel channel = in.getChannel();
+                    long position = copiedLength;
+                    long end = channel.size();
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, out.getChannel());
+                    }
+                    out.getChannel().force(true);
+                }
+                try {
+                    journal.close();
+                    Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    openJournal();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not compact " + journalFile + ", appending to it as before");
+            e.printStackTrace();
+        } finally {
+            compacted.delete();
+        }
+    }
+
+    private static String hostOf(Message message) throws MessagingException {
+        Address[] recipients = message.getAllRecipients();
+        if (recipients != null && recipients.length > 0 && recipients[0] instanceof InternetAddress) {
+            String address = ((InternetAddress) recipients[0]).getAddress();
+            int at = address.lastIndexOf('@');
+            if (at >= 0) {
+                return address.substring(at + 1).toLowerCase();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Stop dispatching and close the journal. The messages the sender has not
+     * taken off its queue yet are taken back and stay in the journal. The
+     * outbox waits up to the given time for the ones being sent and records
+     * whether they were sent. Messages still being sent after that, or when
+     * the wait is interrupted, stay in the journal and are sent again on the
+     * next open. An interrupt is passed on to the caller once the journal is
+     * closed.
+     */
+    public void close(long timeoutMillis) throws IOException {
+        Thread dispatcherThread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            notifyAll();
+            dispatcherThread = dispatcher;
+        }
+        boolean interrupted = false;
+        // the dispatcher stops after at most one compaction
+        while (dispatcherThread.isAlive()) {
+            try {
+                dispatcherThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            synchronized (this) {
+                for (Entry entry : new ArrayList<>(inFlight)) {
+                    if (sender.cancel(entry.message)) {
+                        inFlight.remove(entry);
+                        entry.message = null;
+                    }
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (!inFlight.isEmpty() && !interrupted) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (!inFlight.isEmpty()) {
+                    System.out.println("Closing " + journalFile + " with " + inFlight.size()
+                            + " messages still being sent, they are sent again on the next open");
+                    // their results come too late for the journal and are ignored
+                    inFlight.clear();
+                }
+                journal.close();
+                journal = null;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Close the outbox, waiting up to 30 seconds for the messages being sent
+     */
+    @Override
+    public void close() throws IOException {
+        close(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    public void setMaxConcurrentSends(int maxConcurrentSends) {
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+
+    /**
+     * The number of messages per second that can be sent to the same recipient
+     * domain
+     */
+    public void setRatePerHost(double ratePerHost) {
+        if (!(ratePerHost > 0)) {
+            throw new IllegalArgumentException("The rate per host should be positive : " + ratePerHost);
+        }
+        this.ratePerHost = ratePerHost;
+    }
+
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * The number of sent messages after which the journal is compacted
+     */
+    public void setCompactThreshold(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * Whether {@link #enqueue(Message)} forces the journal to disk before
+     * returning. Off by default, the journal then survives a crash of the
+     * process but not of the machine.
+     */
+    public void setSyncOnEnqueue(boolean syncOnEnqueue) {
+        this.syncOnEnqueue = syncOnEnqueue;
+    }
+
+    private static class Entry {
+
+        private final long id;
+
+        private final String host;
+
+        private final byte[] content;
+
+        private int attempts;
+
+        /**
+         * The time, from {@link System#nanoTime()}, of the next attempt
+         */
+        private long nextAttemptAt;
+
+        /**
+         * The message handed to the sender, while it is in flight
+         */
+        private Message message;
+
+        Entry(long id, String host, byte[] content) {
+            this.id = id;
+            this.host = host;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The messages that can be sent to a recipient domain
+     */
+    private static class Host {
+
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+        /**
+         * The time, from {@link System#nanoTime()}, at which the next message
+         * may be sent
+         */
+        private long nextSendAt;
+
+        Host(long nextSendAt) {
+            this.nextSendAt = nextSendAt;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends messages through a {@link MailOutbox} to an in-process
+ * {@link StubSmtpServer}, and opens the outbox again on the same journal to
+ * check what was recorded.
+ */
+public class MailOutboxTest {
+
+    private StubSmtpServer server;
+
+    private Session session;
+
+    private PooledMailSender sender;
+
+    private File directory;
+
+    private File journalFile;
+
+    private final List<MailOutbox> outboxes = new ArrayList<>();
+
+    @Before
+    public void start() throws Exception {
+        server = new StubSmtpServer(0);
+        server.start();
+
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "false");
+        props.put("mail.smtp.starttls.enable", "false");
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        props.put("mail.smtp.connectiontimeout", "10000");
+        props.put("mail.smtp.timeout", "10000");
+        session = Session.getInstance(props);
+
+        sender = new PooledMailSender(session, 2, 100, 10);
+        sender.start();
+
+        directory = Files.createTempDirectory("outbox").toFile();
+        journalFile = new File(directory, "outbox.journal");
+    }
+
+    @After
+    public void stop() throws Exception {
+        for (MailOutbox outbox : outboxes) {
+            outbox.close(0);
+        }
+        server.stop();
+        sender.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void closeAndReopenDoesNotSendAgain() throws Exception {
+        server.setMessageDelayMillis(10);
+        MailOutbox outbox = open();
+        for (int i = 0; i < 40; i++) {
+            outbox.enqueue(createMessage(i, "easetech.org"));
+        }
+        Thread.sleep(100);
+        outbox.close();
+        int received = server.getMessagesReceived();
+        assertEquals(40 - received, outbox.getPendingCount());
+
+        final MailOutbox reopened = open();
+        assertEquals(40 - received, reopened.getPendingCount());
+        waitUntilSent(reopened);
+        assertEquals(40, server.getMessagesReceived());
+    }
+
+    @Test
+    public void removesRecordCutShortAtTheEnd() throws Exception {
+        server.setRejectRate(1);
+        MailOutbox outbox = open();
+        outbox.setInitialBackoffMillis(60 * 60 * 1000);
+        for (int i = 0; i < 3; i++) {
+            outbox.enqueue(createMessage(i, "easetech.org"));
+        }
+        outbox.close();
+        long length = journalFile.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile, true))) {
+            // an enqueued record stopped in the middle of the host name
+            out.writeByte(1);
+            out.writeLong(4);
+            out.writeShort(12);
+            out.writeBytes("easetech");
+        }
+
+        MailOutbox reopened = open();
+        assertEquals(3, reopened.getPendingCount());
+        assertEquals(length, journalFile.length());
+        assertEquals(4, reopened.enqueue(createMessage(3, "easetech.org")));
+    }
+
+    @Test
+    public void idsContinueAfterCompactionRemovedEverything() throws Exception {
+        MailOutbox outbox = open();
+        outbox.setCompactThreshold(1);
+        for (int i = 0; i < 5; i++) {
+            outbox.enqueue(createMessage(i, "easetech.org"));
+        }
+        waitUntilSent(outbox);
+        // only the next id is left once the last compaction ran
+        waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return journalFile.length() == 1 + 8;
+            }
+        });
+        outbox.close();
+
+        MailOutbox reopened = open();
+        assertEquals(0, reopened.getPendingCount());
+        assertEquals(6, reopened.enqueue(createMessage(5, "easetech.org")));
+    }
+
+    @Test
+    public void retriesUntilMaxAttempts() throws Exception {
+        server.setRejectRate(1);
+        MailOutbox outbox = open();
+        outbox.setInitialBackoffMillis(10);
+        outbox.setMaxAttempts(3);
+        outbox.enqueue(createMessage(0, "easetech.org"));
+        waitUntilSent(outbox);
+        outbox.close();
+        assertEquals(3, server.getMessagesRejected());
+
+        MailOutbox reopened = open();
+        assertEquals(0, reopened.getPendingCount());
+    }
+
+    @Test
+    public void limitsTheRatePerDomain() throws Exception {
+        MailOutbox outbox = open();
+        outbox.setRatePerHost(20);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            outbox.enqueue(createMessage(i, "easetech.org"));
+        }
+        waitUntilSent(outbox);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("elapsed : " + elapsedMillis + " ms", elapsedMillis >= 9 * 50 - 10);
+        assertEquals(10, server.getMessagesReceived());
+    }
+
+    @Test
+    public void closeGivesUpOnAServerThatDoesNotAnswer() throws Exception {
+        server.setMessageDelayMillis(60 * 1000);
+        MailOutbox outbox = open();
+        outbox.enqueue(createMessage(0, "easetech.org"));
+        waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return server.getConnectionsAccepted() > 0;
+            }
+        });
+        long start = System.nanoTime();
+        outbox.close(200);
+        assertTrue(System.nanoTime() - start < 5000000000L);
+
+        MailOutbox reopened = open();
+        assertEquals(1, reopened.getPendingCount());
+    }
+
+    private MailOutbox open() throws IOException {
+        MailOutbox outbox = new MailOutbox(journalFile, session, sender);
+        outboxes.add(outbox);
+        outbox.open();
+        return outbox;
+    }
+
+    private void waitUntilSent(final MailOutbox outbox) throws Exception {
+        waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return outbox.getPendingCount() == 0;
+            }
+        });
+    }
+
+    private void waitUntil(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + 20000000000L;
+        while (!condition.call()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Message createMessage(int i, String domain) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("no-reply@easetech.org"));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("anuj.kumar@" + domain));
+        message.setSubject("Testing Subject " + i);
+        message.setText("Dear Mail Crawler," + "\n\n No spam to my email, please!");
+        return message;
+    }
+}
@@ -0,0 +1,467 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends messages over a small pool of kept-alive SMTP connections, instead of
+ * opening a new connection for every message as the static
+ * {@link Transport#send(Message)} used by {@link SendEmail} does.
+ *
+ * Messages are accepted in to a bounded queue by {@link #send(Message)}, which
+ * blocks while the queue is full. Every worker thread owns one connected
+ * {@link Transport}, takes up to batchSize messages off the queue at a time
+ * and sends them one after the other over its connection. When a connection
+ * has been dropped by the server, it is connected again and the message is
+ * retried once. Messages rejected by the server, or that could not be sent
+ * because of an unexpected error, are counted as failed.
+ *
+ * Usage :
+ *
+ * <pre>
+ * try (PooledMailSender sender = new PooledMailSender(session, 4, 10000, 100)) {
+ *     sender.start();
+ *     sender.send(message);
+ * }
+ * </pre>
+ */
+public class PooledMailSender implements AutoCloseable {
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final Session session;
+
+    private final int connections;
+
+    private final int batchSize;
+
+    private final BlockingQueue<QueuedMessage> queue;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    /**
+     * Held for reading while a message is queued and for writing while the
+     * sender is stopped, so that no message is queued after the workers have
+     * seen the last one
+     */
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether a failure without a listener has been printed. The later ones
+     * are only counted, a burst of rejected messages would flood the output.
+     */
+    private final AtomicBoolean failureLogged = new AtomicBoolean();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private long startTime;
+
+    /**
+     * @param session the session holding the SMTP host, port and credentials
+     * @param connections the number of connections, and worker threads, to use
+     * @param queueCapacity the number of messages that can wait to be sent
+     * @param batchSize the number of messages a worker sends before going back
+     *            to the queue
+     */
+    public PooledMailSender(Session session, int connections, int queueCapacity, int batchSize) {
+        this.session = session;
+        this.connections = connections;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Start the worker threads. The connections are opened when the first
+     * messages arrive.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startTime = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "mail-sender-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Queue a message to be sent, waiting while the queue is full
+     */
+    public void send(Message message) throws InterruptedException {
+        send(message, null);
+    }
+
+    /**
+     * Queue a message to be sent, waiting while the queue is full. The
+     * listener is told whether the message was sent or not.
+     */
+    public void send(Message message, Listener listener) throws InterruptedException {
+        runningLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("The mail sender is not started");
+            }
+            queue.put(new QueuedMessage(message, listener, System.nanoTime()));
+        } finally {
+            runningLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queue a message to be sent, without waiting. Returns false if the queue
+     * is full.
+     */
+    public boolean offer(Message message) {
+        return offer(message, null);
+    }
+
+    /**
+     * Queue a message to be sent, without waiting. Returns false if the queue
+     * is full. The listener is told whether the message was sent or not.
+     */
+    public boolean offer(Message message, Listener listener) {
+        runningLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("The mail sender is not started");
+            }
+            return queue.offer(new QueuedMessage(message, listener, System.nanoTime()));
+        } finally {
+            runningLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Take a message back out of the queue, if no worker has taken it yet.
+     * Returns true if the message was removed, its listener is then not told
+     * about it.
+     */
+    public boolean cancel(Message message) {
+        for (QueuedMessage queued : queue) {
+            if (queued.message == message) {
+                return queue.remove(queued);
+            }
+        }
+        return false;
+    }
+
+    private void work() {
+        Transport transport = null;
+        List<QueuedMessage> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                QueuedMessage first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (QueuedMessage queued : batch) {
+                    try {
+                        transport = sendMessage(transport, queued);
+                    } catch (RuntimeException e) {
+                        // keep the worker alive, the state of the connection is unknown though
+                        failed(queued, new MessagingException("Unexpected error while sending the message", e));
+                        close(transport);
+                        transport = null;
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(transport);
+        }
+    }
+
+    /**
+     * Send a message over the given transport, connecting it first if needed.
+     * Returns the transport to use for the next message.
+     */
+    private Transport sendMessage(Transport transport, QueuedMessage queued) {
+        try {
+            transport = connect(transport);
+            deliver(transport, queued);
+        } catch (MessagingException e) {
+            if (transport != null && transport.isConnected()) {
+                // the server rejected the message itself
+                failed(queued, e);
+                return transport;
+            }
+            // the server dropped the connection, retry once over a new one
+            close(transport);
+            transport = null;
+            try {
+                reconnects.incrementAndGet();
+                transport = connect(null);
+                deliver(transport, queued);
+            } catch (MessagingException retryException) {
+                failed(queued, retryException);
+                close(transport);
+                transport = null;
+            }
+        }
+        return transport;
+    }
+
+    private Transport connect(Transport transport) throws MessagingException {
+        if (transport != null && transport.isConnected()) {
+            return transport;
+        }
+        close(transport);
+        Transport newTransport = session.getTransport("smtp");
+        newTransport.connect();
+        return newTransport;
+    }
+
+    private void deliver(Transport transport, QueuedMessage queued) throws MessagingException {
+        Message message = queued.message;
+        message.saveChanges();
+        transport.sendMessage(message, message.getAllRecipients());
+        long latency = System.nanoTime() - queued.enqueuedAt;
+        sent.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // another worker updated the max, try again
+        }
+        if (queued.listener != null) {
+            try {
+                queued.listener.onSent(message);
+            } catch (RuntimeException e) {
+                // keep the worker and its connection alive
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void failed(QueuedMessage queued, MessagingException e) {
+        failed.incrementAndGet();
+        if (queued.listener != null) {
+            try {
+                queued.listener.onFailed(queued.message, e);
+            } catch (RuntimeException listenerException) {
+                listenerException.printStackTrace();
+            }
+        } else if (failureLogged.compareAndSet(false, true)) {
+            System.out.println("Failed to send a message, later failures are only counted in the stats");
+            e.printStackTrace();
+        }
+    }
+
+    private void close(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // the connection is already gone
+        }
+    }
+
+    /**
+     * Stop accepting messages, wait for the queued ones to be sent and close
+     * the connections. An interrupt does not cut the wait short, it is passed
+     * on to the caller once the workers are done.
+     */
+    @Override
+    public void close() {
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        workers.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A snapshot of the throughput and latency of the messages sent so far
+     */
+    public Stats getStats() {
+        return new Stats(sent.get(), failed.get(), reconnects.get(), queue.size(), totalLatencyNanos.get(),
+                maxLatencyNanos.get(), System.nanoTime() - startTime);
+    }
+
+    /**
+     * Told, on the worker thread, whether a queued message was sent or not
+     */
+    public interface Listener {
+
+        void onSent(Message message);
+
+        void onFailed(Message message, MessagingException e);
+    }
+
+    private static class QueuedMessage {
+
+        private final Message message;
+
+        private final Listener listener;
+
+        private final long enqueuedAt;
+
+        QueuedMessage(Message message, Listener listener, long enqueuedAt) {
+            this.message = message;
+            this.listener = listener;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    public static class Stats {
+
+        private final long sent;
+
+        private final long failed;
+
+        private final long reconnects;
+
+        private final int queued;
+
+        private final long totalLatencyNanos;
+
+        private final long maxLatencyNanos;
+
+        private final long elapsedNanos;
+
+        Stats(long sent, long failed, long reconnects, int queued, long totalLatencyNanos, long maxLatencyNanos,
+                long elapsedNanos) {
+            this.sent = sent;
+            this.failed = failed;
+            this.reconnects = reconnects;
+            this.queued = queued;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Messages sent per second since the sender was started
+         */
+        public double getMessagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : sent / (elapsedNanos / 1000000000.0);
+        }
+
+        /**
+         * Average time between queueing and sending a message, in milliseconds
+         */
+        public double getAverageLatencyMillis() {
+            return sent == 0 ? 0 : totalLatencyNanos / (double) sent / 1000000.0;
+        }
+
+        /**
+         * Longest time between queueing and sending a message, in milliseconds
+         */
+        public double getMaxLatencyMillis() {
+            return maxLatencyNanos / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d failed=%d reconnects=%d queued=%d messages/s=%.1f avg latency=%.2f ms"
+                    + " max latency=%.2f ms", sent, failed, reconnects, queued, getMessagesPerSecond(),
+                    getAverageLatencyMillis(), getMaxLatencyMillis());
+        }
+    }
+
+    /**
+     * Send a burst of messages to a {@link StubSmtpServer} and print the stats
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        StubSmtpServer server = new StubSmtpServer(0);
+        server.start();
+
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "false");
+        props.put("mail.smtp.starttls.enable", "false");
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+
+        Session session = Session.getInstance(props);
+
+        PooledMailSender sender = new PooledMailSender(session, 4, 1000, 100);
+        try {
+            sender.start();
+            for (int i = 0; i < messages; i++) {
+                Message message = new MimeMessage(session);
+                message.setFrom(new InternetAddress("no-reply@easetech.org"));
+                message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("anuj.kumar@easetech.org"));
+                message.setSubject("Testing Subject " + i);
+                message.setText("Dear Mail Crawler," + "\n\n No spam to my email, please!");
+                sender.send(message);
+            }
+        } finally {
+            sender.close();
+            server.stop();
+        }
+
+        System.out.println(sender.getStats());
+        System.out.println("Messages received by the server : " + server.getMessagesReceived()
+                + ", connections opened : " + server.getConnectionsAccepted());
+    }
+}
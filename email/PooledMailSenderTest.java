@@ -0,0 +1,173 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends messages with {@link PooledMailSender} to an in-process
+ * {@link StubSmtpServer} and checks what arrived.
+ */
+public class PooledMailSenderTest {
+
+    private static final int CONNECTIONS = 4;
+
+    private StubSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StubSmtpServer(0);
+        server.start();
+
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "false");
+        props.put("mail.smtp.starttls.enable", "false");
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        session = Session.getInstance(props);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void sendsEveryMessageOverReusedConnections() throws Exception {
+        PooledMailSender sender = new PooledMailSender(session, CONNECTIONS, 100, 10);
+        sender.start();
+        for (int i = 0; i < 500; i++) {
+            sender.send(createMessage(i));
+        }
+        sender.close();
+
+        assertEquals(500, sender.getStats().getSent());
+        assertEquals(0, sender.getStats().getFailed());
+        assertEquals(500, server.getMessagesReceived());
+        assertTrue("connections opened : " + server.getConnectionsAccepted(),
+                server.getConnectionsAccepted() <= CONNECTIONS);
+    }
+
+    @Test
+    public void reconnectsWhenTheServerDropsTheConnection() throws Exception {
+        server.setDropRate(0.2);
+        PooledMailSender sender = new PooledMailSender(session, CONNECTIONS, 100, 10);
+        sender.start();
+        for (int i = 0; i < 200; i++) {
+            sender.send(createMessage(i));
+        }
+        sender.close();
+
+        PooledMailSender.Stats stats = sender.getStats();
+        assertTrue("connections dropped : " + server.getConnectionsDropped(), server.getConnectionsDropped() > 0);
+        assertTrue("reconnects : " + stats.getReconnects(), stats.getReconnects() > 0);
+        assertEquals(200, stats.getSent() + stats.getFailed());
+        assertEquals(stats.getSent(), server.getMessagesReceived());
+        // a message only fails when its retry over a new connection is dropped as well
+        assertTrue("failed : " + stats.getFailed(), stats.getFailed() <= server.getConnectionsDropped() / 2);
+    }
+
+    @Test
+    public void reportsRejectedMessagesAndKeepsTheConnection() throws Exception {
+        server.setRejectRate(1);
+        final AtomicInteger failures = new AtomicInteger();
+        PooledMailSender.Listener listener = new PooledMailSender.Listener() {
+            @Override
+            public void onSent(Message message) {
+            }
+
+            @Override
+            public void onFailed(Message message, MessagingException e) {
+                failures.incrementAndGet();
+            }
+        };
+        PooledMailSender sender = new PooledMailSender(session, 1, 100, 10);
+        sender.start();
+        for (int i = 0; i < 20; i++) {
+            sender.send(createMessage(i), listener);
+        }
+        sender.close();
+
+        assertEquals(20, failures.get());
+        assertEquals(20, sender.getStats().getFailed());
+        assertEquals(0, server.getMessagesReceived());
+        assertEquals(1, server.getConnectionsAccepted());
+    }
+
+    @Test
+    public void keepsSendingAfterAnUnexpectedError() throws Exception {
+        PooledMailSender sender = new PooledMailSender(session, 1, 100, 10);
+        sender.start();
+        sender.send(new MimeMessage(session) {
+            @Override
+            public void saveChanges() {
+                throw new IllegalStateException("broken message");
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            sender.send(createMessage(i));
+        }
+        sender.close();
+
+        assertEquals(1, sender.getStats().getFailed());
+        assertEquals(10, sender.getStats().getSent());
+        assertEquals(10, server.getMessagesReceived());
+    }
+
+    @Test
+    public void sendsEveryMessageQueuedWhileClosing() throws Exception {
+        final PooledMailSender sender = new PooledMailSender(session, CONNECTIONS, 10, 10);
+        sender.start();
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread[] callers = new Thread[4];
+        for (int t = 0; t < callers.length; t++) {
+            callers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0;; i++) {
+                            sender.send(createMessage(i));
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        // the sender was closed
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            callers[t].start();
+        }
+        Thread.sleep(200);
+        sender.close();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        PooledMailSender.Stats stats = sender.getStats();
+        assertTrue("accepted : " + accepted.get(), accepted.get() > 0);
+        assertEquals(accepted.get(), stats.getSent() + stats.getFailed());
+        assertEquals(stats.getSent(), server.getMessagesReceived());
+    }
+
+    private Message createMessage(int i) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("no-reply@easetech.org"));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("anuj.kumar@easetech.org"));
+        message.setSubject("Testing Subject " + i);
+        message.setText("Dear Mail Crawler," + "\n\n No spam to my email, please!");
+        return message;
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A load test for sending email. It starts a {@link StubSmtpServer} on the
+ * local machine, drives a number of concurrent senders at a target rate and
+ * reports the send latency percentiles, the messages per second and the error
+ * counts of
+ * <ul>
+ * <li>single : one connection per message, using the static
+ * {@link Transport#send(Message)} like {@link SendEmail}</li>
+ * <li>pooled : kept-alive connections, using {@link PooledMailSender}</li>
+ * </ul>
+ *
+ * The latency of a message is measured from the time it was scheduled to be
+ * sent, not the time the sender got round to it, so that a server that cannot
+ * keep up shows in the percentiles. The senders are scheduled evenly spread
+ * over the interval between two messages of the same sender, instead of all
+ * at the same time. Messages that are not sent or failed within the timeout
+ * are reported as errors.
+ *
+ * The settings are passed as name=value arguments, e.g.
+ *
+ * <pre>
+ * java SmtpLoadTest messages=10000 senders=8 rate=2000 replyDelay=1 rejectRate=0.01 mode=both
+ * </pre>
+ *
+ * <ul>
+ * <li>messages : number of messages to send per mode, defaults to 2000</li>
+ * <li>senders : number of concurrent senders, and pooled connections, defaults
+ * to 4</li>
+ * <li>rate : target messages per second over all senders, 0 for as fast as
+ * possible, defaults to 0</li>
+ * <li>replyDelay : delay of the server before every reply, in milliseconds,
+ * defaults to 0</li>
+ * <li>messageDelay : extra delay of the server before accepting a message, in
+ * milliseconds, defaults to 0</li>
+ * <li>rejectRate : fraction of the messages the server rejects, defaults to 0</li>
+ * <li>dropRate : fraction of the messages on which the server drops the
+ * connection, defaults to 0</li>
+ * <li>mode : single, pooled or both, defaults to both</li>
+ * <li>timeout : time to wait for the messages after the last one was
+ * scheduled, in seconds, defaults to 30. Also used as the SMTP connect and
+ * read timeout.</li>
+ * </ul>
+ */
+public class SmtpLoadTest {
+
+    private final Map<String, String> settings;
+
+    private final int messages;
+
+    private final int senders;
+
+    private final double rate;
+
+    /**
+     * The time between two messages of the same sender, 0 for as fast as
+     * possible
+     */
+    private final long intervalNanos;
+
+    private final long timeoutNanos;
+
+    public SmtpLoadTest(Map<String, String> settings) {
+        this.settings = settings;
+        this.messages = Integer.parseInt(setting("messages", "2000"));
+        this.senders = Integer.parseInt(setting("senders", "4"));
+        this.rate = Double.parseDouble(setting("rate", "0"));
+        this.intervalNanos = rate > 0 ? (long) (1000000000L * senders / rate) : 0;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(setting("timeout", "30")));
+    }
+
+    private String setting(String name, String defaultValue) {
+        String value = settings.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public void run() throws Exception {
+        String mode = setting("mode", "both");
+        if ("single".equals(mode) || "both".equals(mode)) {
+            report("single", runMode(false));
+        }
+        if ("pooled".equals(mode) || "both".equals(mode)) {
+            report("pooled", runMode(true));
+        }
+    }
+
+    private Result runMode(boolean pooled) throws Exception {
+        StubSmtpServer server = new StubSmtpServer(0);
+        server.setReplyDelayMillis(Long.parseLong(setting("replyDelay", "0")));
+        server.setMessageDelayMillis(Long.parseLong(setting("messageDelay", "0")));
+        server.setRejectRate(Double.parseDouble(setting("rejectRate", "0")));
+        server.setDropRate(Double.parseDouble(setting("dropRate", "0")));
+        server.start();
+
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "false");
+        props.put("mail.smtp.starttls.enable", "false");
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        // so that a server that stops answering fails the messages instead of hanging the test
+        String timeoutMillis = String.valueOf(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        props.put("mail.smtp.connectiontimeout", timeoutMillis);
+        props.put("mail.smtp.timeout", timeoutMillis);
+        Session session = Session.getInstance(props);
+
+        Result result = new Result(messages);
+        PooledMailSender pooledSender = null;
+        if (pooled) {
+            pooledSender = new PooledMailSender(session, senders, Math.max(senders, 1000), 100);
+            pooledSender.start();
+        }
+        try {
+            long startTime = System.nanoTime();
+            Thread[] threads = new Thread[senders];
+            for (int i = 0; i < senders; i++) {
+                threads[i] = new Thread(new Sender(i, session, pooledSender, result, startTime), "load-sender-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+            long messagesPerSender = (messages + senders - 1) / senders;
+            long deadline = startTime + Math.max(messagesPerSender - 1, 0) * intervalNanos + timeoutNanos;
+            for (Thread thread : threads) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(deadline - System.nanoTime(), 1));
+            }
+            result.completed.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            result.finish(System.nanoTime() - startTime);
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        } finally {
+            // stopped first, so that the messages still queued fail straight away
+            server.stop();
+            if (pooledSender != null) {
+                pooledSender.close();
+            }
+        }
+        result.connections = server.getConnectionsAccepted();
+        return result;
+    }
+
+    /**
+     * Sends its share of the messages, each one at its scheduled time
+     */
+    private class Sender implements Runnable {
+
+        private final int index;
+
+        private final Session session;
+
+        private final PooledMailSender pooledSender;
+
+        private final Result result;
+
+        private final long startTime;
+
+        Sender(int index, Session session, PooledMailSender pooledSender, Result result, long startTime) {
+            this.index = index;
+            this.session = session;
+            this.pooledSender = pooledSender;
+            this.result = result;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void run() {
+            long offset = index * intervalNanos / senders;
+            int sent = 0;
+            for (int i = index; i < messages; i += senders) {
+                final long scheduledAt = startTime + offset + sent++ * intervalNanos;
+                long wait = scheduledAt - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                try {
+                    Message message = createMessage(session, i);
+                    if (pooledSender == null) {
+                        Transport.send(message);
+                        result.sent(System.nanoTime() - scheduledAt);
+                    } else {
+                        pooledSender.send(message, new PooledMailSender.Listener() {
+                            @Override
+                            public void onSent(Message message) {
+                                result.sent(System.nanoTime() - scheduledAt);
+                            }
+
+                            @Override
+                            public void onFailed(Message message, MessagingException e) {
+                                result.failed(System.nanoTime() - scheduledAt);
+                            }
+                        });
+                    }
+                } catch (MessagingException | RuntimeException e) {
+                    result.failed(System.nanoTime() - scheduledAt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static Message createMessage(Session session, int i) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("no-reply@easetech.org"));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("anuj.kumar@easetech.org"));
+        message.setSubject("Load test message " + i);
+        message.setText("Dear Mail Crawler," + "\n\n No spam to my email, please!");
+        return message;
+    }
+
+    /**
+     * The latencies and counts of one run. Filled in by the senders, or by the
+     * workers of the {@link PooledMailSender}, until the run is finished.
+     */
+    private static class Result {
+
+        private final long[] latencies;
+
+        private int recorded;
+
+        private int errors;
+
+        /**
+         * The messages not sent or failed when the run was finished
+         */
+        private int missing;
+
+        private boolean finished;
+
+        private final CountDownLatch completed;
+
+        private long elapsedNanos;
+
+        private int connections;
+
+        Result(int messages) {
+            this.latencies = new long[messages];
+            this.completed = new CountDownLatch(messages);
+        }
+
+        synchronized void sent(long latencyNanos) {
+            if (finished) {
+                return;
+            }
+            latencies[recorded++] = latencyNanos;
+            completed.countDown();
+        }
+
+        synchronized void failed(long latencyNanos) {
+            if (finished) {
+                return;
+            }
+            errors++;
+            sent(latencyNanos);
+        }
+
+        /**
+         * Stop recording, the messages not recorded yet are counted as missing
+         */
+        synchronized void finish(long elapsedNanos) {
+            finished = true;
+            missing = latencies.length - recorded;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    private void report(String mode, Result result) {
+        long[] latencies = Arrays.copyOf(result.latencies, result.recorded);
+        Arrays.sort(latencies);
+        int succeeded = latencies.length - result.errors;
+        int errors = result.errors + result.missing;
+        double seconds = result.elapsedNanos / 1000000000.0;
+        System.out.println(String.format("%-7s messages=%d sent=%d errors=%d (timed out=%d) connections=%d"
+                + " elapsed=%.2f s messages/s=%.1f p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms", mode,
+                latencies.length + result.missing, succeeded, errors, result.missing, result.connections, seconds,
+                succeeded / seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1.0)));
+    }
+
+    /**
+     * The latency, in milliseconds, below which the given fraction of the
+     * sorted latencies lie
+     */
+    private static double percentile(long[] sortedLatencies, double fraction) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1000000.0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index < 0) {
+                System.out.println("Arguments should be of the form name=value, ignoring " + arg);
+                continue;
+            }
+            settings.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        new SmtpLoadTest(settings).run();
+    }
+}
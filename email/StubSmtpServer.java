@@ -0,0 +1,261 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal in-process SMTP server that accepts every message and throws it
+ * away, keeping only a count. It understands just enough of the protocol
+ * (HELO/EHLO, MAIL, RCPT, DATA, RSET, NOOP and QUIT) for JavaMail to send
+ * messages to it, and can be used instead of the fakemail server to try out
+ * {@link SendEmail} and {@link PooledMailSender} on the local machine.
+ *
+ * Every connection is handled by its own thread, and the connections are kept
+ * open until the client sends QUIT.
+ *
+ * To see how clients behave against a slow or unreliable server, a delay can be
+ * added to every reply and to the acceptance of every message, and a fraction
+ * of the messages can be rejected with a temporary failure or answered by
+ * dropping the connection.
+ */
+public class StubSmtpServer implements Runnable {
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicInteger messagesReceived = new AtomicInteger();
+
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+
+    private final AtomicInteger messagesRejected = new AtomicInteger();
+
+    private final AtomicInteger connectionsDropped = new AtomicInteger();
+
+    private volatile long replyDelayMillis;
+
+    private volatile long messageDelayMillis;
+
+    private volatile double rejectRate;
+
+    private volatile double dropRate;
+
+    private final Set<Socket> openSockets = Collections.synchronizedSet(new HashSet<Socket>());
+
+    private volatile boolean running;
+
+    /**
+     * Create a server listening on the given port of the loopback address. Use
+     * port 0 to let the system pick a free port, and {@link #getPort()} to find
+     * out which one.
+     */
+    public StubSmtpServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Start accepting connections on a background thread
+     */
+    public void start() {
+        running = true;
+        Thread acceptor = new Thread(this, "stub-smtp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionsAccepted.incrementAndGet();
+                openSockets.add(socket);
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "stub-smtp-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = s.getOutputStream()) {
+            reply(out, "220 localhost stub SMTP server ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!onCommand(line, in, out)) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // the client or stop() closed the connection
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Reply to a single SMTP command. Returns false when the connection should
+     * be closed.
+     */
+    protected boolean onCommand(String line, BufferedReader in, OutputStream out) throws IOException {
+        String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+        switch (command) {
+        case "EHLO":
+        case "HELO":
+            reply(out, "250 localhost");
+            return true;
+        case "DATA":
+            reply(out, "354 End data with <CR><LF>.<CR><LF>");
+            String data;
+            while ((data = in.readLine()) != null && !".".equals(data)) {
+                // discard the message content
+            }
+            return onMessage(out);
+        case "QUIT":
+            reply(out, "221 Bye");
+            return false;
+        case "MAIL":
+        case "RCPT":
+        case "RSET":
+        case "NOOP":
+            reply(out, "250 OK");
+            return true;
+        default:
+            reply(out, "502 Command not implemented");
+            return true;
+        }
+    }
+
+    /**
+     * Called when the content of a message has been received. Returns false
+     * when the connection should be dropped.
+     */
+    protected boolean onMessage(OutputStream out) throws IOException {
+        sleep(messageDelayMillis);
+        double random = ThreadLocalRandom.current().nextDouble();
+        if (random < dropRate) {
+            connectionsDropped.incrementAndGet();
+            return false;
+        }
+        if (random < dropRate + rejectRate) {
+            messagesRejected.incrementAndGet();
+            reply(out, "451 Requested action aborted: local error in processing");
+            return true;
+        }
+        messagesReceived.incrementAndGet();
+        reply(out, "250 OK queued");
+        return true;
+    }
+
+    protected void reply(OutputStream out, String reply) throws IOException {
+        sleep(replyDelayMillis);
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop accepting connections and close the open ones
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (openSockets) {
+            for (Socket socket : openSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public int getMessagesRejected() {
+        return messagesRejected.get();
+    }
+
+    public int getConnectionsDropped() {
+        return connectionsDropped.get();
+    }
+
+    /**
+     * Delay, in milliseconds, before every reply to the client, including the
+     * greeting
+     */
+    public void setReplyDelayMillis(long replyDelayMillis) {
+        this.replyDelayMillis = replyDelayMillis;
+    }
+
+    /**
+     * Extra delay, in milliseconds, before a received message is accepted
+     */
+    public void setMessageDelayMillis(long messageDelayMillis) {
+        this.messageDelayMillis = messageDelayMillis;
+    }
+
+    /**
+     * Fraction, between 0 and 1, of the messages rejected with a temporary
+     * failure
+     */
+    public void setRejectRate(double rejectRate) {
+        this.rejectRate = rejectRate;
+    }
+
+    /**
+     * Fraction, between 0 and 1, of the messages answered by dropping the
+     * connection
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+}
@@ -0,0 +1,341 @@
+package org.easetech.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A benchmark run that processes a sample of the real input file, specified
+ * using {@link DataProcessor#setFilePath(String)}, with different read and
+ * write buffer sizes. It measures the throughput and the hash cache hit rate
+ * of every combination, prints an estimated time for processing the complete
+ * file and recommends the best settings.
+ * <p>
+ * The sample consists of the first {@link #sampleSizeInMB} MB of the file plus
+ * {@link #RANDOM_CHUNKS} chunks read from random offsets, so that the rows at
+ * the end of the file are represented as well. The chunks never overlap, so
+ * no row is part of the sample twice.
+ * <p>
+ * The recommended settings can be saved to a profile file using
+ * {@link #saveProfile(String)} and loaded by later runs using
+ * {@link #loadProfile(String, DataProcessor)}.
+ */
+public class Calibrator {
+
+	/**
+	 * The read buffer sizes, in chars, to try
+	 */
+	private static final int[] INPUT_BUFFER_SIZES = { 8192, 65536, 262144, 1048576 };
+
+	/**
+	 * The write buffer sizes, in chars, to try
+	 */
+	private static final int[] OUTPUT_BUFFER_SIZES = { 8192, 65536, 262144, 1048576 };
+
+	/**
+	 * Default size of the head of the file to use as sample, in MB
+	 */
+	private static final int DEFAULT_SAMPLE_SIZE_IN_MB = 8;
+
+	/**
+	 * Number of chunks to read from random offsets of the file
+	 */
+	private static final int RANDOM_CHUNKS = 16;
+
+	/**
+	 * Size of every chunk read from a random offset, in bytes
+	 */
+	private static final int RANDOM_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Number of times the sample is processed with every combination. The
+	 * median run is used, so that a single lucky or unlucky run, e.g. because
+	 * of JIT compilation or GC, does not decide the result
+	 */
+	private static final int RUNS_PER_SETTING = 7;
+
+	/**
+	 * Profile key for the input buffer size
+	 */
+	public static final String INPUT_BUFFER_SIZE_KEY = "inputBufferSize";
+
+	/**
+	 * Profile key for the output buffer size
+	 */
+	public static final String OUTPUT_BUFFER_SIZE_KEY = "outputBufferSize";
+
+	/**
+	 * The processor whose settings are used to process the sample
+	 */
+	private final DataProcessor dataProcessor;
+
+	/**
+	 * The size of the head of the file to use as sample, in MB
+	 */
+	private int sampleSizeInMB = DEFAULT_SAMPLE_SIZE_IN_MB;
+
+	/**
+	 * The best input buffer size found by {@link #calibrate()}
+	 */
+	private int bestInputBuffer;
+
+	/**
+	 * The best output buffer size found by {@link #calibrate()}
+	 */
+	private int bestOutputBuffer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dataProcessor
+	 */
+	public Calibrator(DataProcessor dataProcessor) {
+		this.dataProcessor = dataProcessor;
+	}
+
+	/**
+	 * Run the calibration. Following Steps are followed :
+	 * <ul>
+	 * <li>
+	 * 1) Copy the header line, the head of the file and the chunks read from
+	 * random offsets to a sample file in a temporary directory</li>
+	 * <li>
+	 * 2) Process the sample once to warm up the JVM</li>
+	 * <li>
+	 * 3) Process the sample {@link #RUNS_PER_SETTING} times with every
+	 * combination of read and write buffer sizes and measure the throughput of
+	 * the median run</li>
+	 * <li>
+	 * 4) Print the hash cache hit rate, the best settings and the estimated
+	 * time to process the complete file</li>
+	 * </ul>
+	 */
+	public void calibrate() {
+		System.out.println("Starting calibration process.");
+		File inputFile = new File(dataProcessor.getFilePath());
+		if (!inputFile.exists()) {
+			System.out.println("Can not find or load input file at path: " + dataProcessor.getFilePath());
+			System.exit(0);
+		}
+		File sampleDir = null;
+		try {
+			sampleDir = Files.createTempDirectory("calibration").toFile();
+			File sampleFile = new File(sampleDir, "calibration_sample.csv");
+			createSample(inputFile, sampleFile);
+			System.out.println("Created a sample of " + sampleFile.length() + " bytes from the input file of "
+					+ inputFile.length() + " bytes.");
+
+			// warm up
+			runSample(sampleFile, INPUT_BUFFER_SIZES[0], OUTPUT_BUFFER_SIZES[0]);
+
+			double bestThroughput = 0;
+			for (int inputBuffer : INPUT_BUFFER_SIZES) {
+				for (int outputBuffer : OUTPUT_BUFFER_SIZES) {
+					long elapsed = runSample(sampleFile, inputBuffer, outputBuffer);
+					double throughput = sampleFile.length() / (elapsed / 1000000000.0);
+					System.out.println("inputBufferSize = " + inputBuffer + ", outputBufferSize = " + outputBuffer
+							+ " : " + String.format("%.2f", throughput / (1024 * 1024)) + " MB/s");
+					if (throughput > bestThroughput) {
+						bestThroughput = throughput;
+						bestInputBuffer = inputBuffer;
+						bestOutputBuffer = outputBuffer;
+					}
+				}
+			}
+
+			DataProcessor processor = newProcessor(sampleFile, bestInputBuffer, bestOutputBuffer);
+			processor.processFile();
+			long lookups = processor.getHashCacheHits() + processor.getHashCacheMisses();
+			System.out.println("Hash cache hit rate is : "
+					+ (lookups == 0 ? "n/a" : String.format("%.2f%%", processor.getHashCacheHits() * 100.0 / lookups)));
+			System.out.println("Best settings are : -inputBufferSize " + bestInputBuffer + " -outputBufferSize "
+					+ bestOutputBuffer);
+			System.out.println("Estimated time to process the input file in second is : "
+					+ String.format("%.1f", inputFile.length() / bestThroughput));
+			System.out.println("Ending calibration process");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			deleteDirectory(sampleDir);
+		}
+	}
+
+	/**
+	 * Process the sample file {@link #RUNS_PER_SETTING} times and return the
+	 * median time taken in nano seconds
+	 */
+	private long runSample(File sampleFile, int inputBuffer, int outputBuffer) {
+		long[] times = new long[RUNS_PER_SETTING];
+		for (int run = 0; run < RUNS_PER_SETTING; run++) {
+			DataProcessor processor = newProcessor(sampleFile, inputBuffer, outputBuffer);
+			long startTime = System.nanoTime();
+			processor.processFile();
+			times[run] = System.nanoTime() - startTime;
+		}
+		Arrays.sort(times);
+		return times[RUNS_PER_SETTING / 2];
+	}
+
+	private DataProcessor newProcessor(File sampleFile, int inputBuffer, int outputBuffer) {
+		DataProcessor processor = new DataProcessor(dataProcessor.getKeysToHash(), dataProcessor.getHashingAlgo(),
+				dataProcessor.getDelimeter());
+		processor.setColumnsToKeep(dataProcessor.getColumnsToKeep());
+		processor.setRowFilters(dataProcessor.getRowFilters());
+		processor.setDateFormat(dataProcessor.getDateFormat());
+		processor.setInputBuffer(inputBuffer);
+		processor.setOutputBuffer(outputBuffer);
+		processor.setFilePath(sampleFile.getAbsolutePath());
+		return processor;
+	}
+
+	/**
+	 * Copy the first {@link #sampleSizeInMB} MB of the input file, header line
+	 * included, and {@link #RANDOM_CHUNKS} chunks read from random offsets to
+	 * the sample file. The rest of the file is split in to as many equal parts
+	 * and every chunk is read from its own part, so that the chunks do not
+	 * overlap. Only complete lines are copied.
+	 */
+	private void createSample(File inputFile, File sampleFile) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(inputFile, "r");
+				FileOutputStream out = new FileOutputStream(sampleFile)) {
+			long length = in.length();
+			byte[] head = new byte[(int) Math.min(length, sampleSizeInMB * 1024L * 1024L)];
+			in.readFully(head);
+			if (head.length == length) {
+				// the complete file is part of the sample
+				out.write(head);
+				return;
+			}
+			int headEnd = lastNewLine(head, head.length) + 1;
+			out.write(head, 0, headEnd);
+
+			long partSize = (length - headEnd) / RANDOM_CHUNKS;
+			if (partSize < RANDOM_CHUNK_SIZE) {
+				// the chunks would cover most of the rest anyway, use all of it
+				copy(in, headEnd, length - headEnd, out);
+				return;
+			}
+			Random random = new Random();
+			byte[] chunk = new byte[RANDOM_CHUNK_SIZE];
+			for (int part = 0; part < RANDOM_CHUNKS; part++) {
+				long offset = headEnd + part * partSize
+						+ (long) (random.nextDouble() * (partSize - RANDOM_CHUNK_SIZE));
+				in.seek(offset);
+				in.readFully(chunk);
+				// skip the partial line at the start of the chunk, and at its end
+				int start = firstNewLine(chunk) + 1;
+				int end = lastNewLine(chunk, chunk.length) + 1;
+				if (start > 0 && end > start) {
+					out.write(chunk, start, end - start);
+				}
+			}
+		}
+	}
+
+	private void copy(RandomAccessFile in, long offset, long length, FileOutputStream out) throws IOException {
+		byte[] buffer = new byte[RANDOM_CHUNK_SIZE];
+		in.seek(offset);
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				break;
+			}
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private static int firstNewLine(byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastNewLine(byte[] bytes, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (bytes[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void deleteDirectory(File dir) {
+		if (dir == null) {
+			return;
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Save the best settings found by {@link #calibrate()} to a profile file
+	 *
+	 * @param profilePath path of the profile file
+	 */
+	public void saveProfile(String profilePath) {
+		Properties profile = new Properties();
+		profile.setProperty(INPUT_BUFFER_SIZE_KEY, String.valueOf(bestInputBuffer));
+		profile.setProperty(OUTPUT_BUFFER_SIZE_KEY, String.valueOf(bestOutputBuffer));
+		try (FileOutputStream fos = new FileOutputStream(profilePath)) {
+			profile.store(fos, "Data Processor settings recommended by calibration of " + dataProcessor.getFilePath());
+			System.out.println("Saved the best settings to the profile file at location: " + profilePath);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Apply the settings saved in a profile file to the given processor
+	 *
+	 * @param profilePath path of the profile file
+	 * @param dataProcessor the processor to apply the settings to
+	 */
+	public static void loadProfile(String profilePath, DataProcessor dataProcessor) {
+		Properties profile = new Properties();
+		try (FileInputStream fis = new FileInputStream(profilePath)) {
+			profile.load(fis);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (profile.getProperty(INPUT_BUFFER_SIZE_KEY) != null) {
+			dataProcessor.setInputBuffer(Integer.parseInt(profile.getProperty(INPUT_BUFFER_SIZE_KEY).trim()));
+		}
+		if (profile.getProperty(OUTPUT_BUFFER_SIZE_KEY) != null) {
+			dataProcessor.setOutputBuffer(Integer.parseInt(profile.getProperty(OUTPUT_BUFFER_SIZE_KEY).trim()));
+		}
+	}
+
+	public int getSampleSizeInMB() {
+		return sampleSizeInMB;
+	}
+
+	public void setSampleSizeInMB(int sampleSizeInMB) {
+		this.sampleSizeInMB = sampleSizeInMB;
+	}
+
+	public int getBestInputBuffer() {
+		return bestInputBuffer;
+	}
+
+	public int getBestOutputBuffer() {
+		return bestOutputBuffer;
+	}
+
+}
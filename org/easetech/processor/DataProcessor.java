@@ -7,6 +7,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -84,6 +85,12 @@ public class DataProcessor {
 	 */
 	private static int DEFAULT_BUFFER_SIZE = 10000;
 
+	/**
+	 * The buffer for writing the output and mapping files. If not specified,
+	 * the {@link BufferedWriter} default size is used
+	 */
+	private Integer outputBuffer;
+
 	/**
 	 * Path to the input file. Mandatory field
 	 */
@@ -110,6 +117,35 @@ public class DataProcessor {
 	 */
 	private String dateFormat = DEFAULT_DATE_FORMAT;
 	
+	/**
+	 * The names of the header columns to write to the output file. If not
+	 * specified, all the columns are written.
+	 */
+	private List<String> columnsToKeep;
+	
+	/**
+	 * The indexes of {@link #columnsToKeep} in the header row. Populated when
+	 * we first read the Header line
+	 */
+	private int[] indexesToKeep;
+	
+	/**
+	 * The filters a row needs to match in order to be written to the output
+	 * file. Rows that do not match are dropped before hashing.
+	 */
+	private List<RowFilter> rowFilters = new ArrayList<>();
+	
+	/**
+	 * Number of values whose hash was found in the original value to hashed
+	 * value mapping, instead of being computed again
+	 */
+	private long hashCacheHits;
+	
+	/**
+	 * Number of values whose hash had to be computed
+	 */
+	private long hashCacheMisses;
+	
 
 	/**
 	 * Map containing the 2 Header keys, namely PARAMETER_NAME and
@@ -214,10 +250,12 @@ public class DataProcessor {
 	 * 3) Find out the index of the Header fields PARAMETER_NAME and
 	 * PARAMETER_VALUE</li>
 	 * <li>
-	 * 4) Hash the appropriate values based on the parameter names as specified
+	 * 4) Drop the rows that do not match the {@link #rowFilters}, if any</li>
+	 * <li>
+	 * 5) Hash the appropriate values based on the parameter names as specified
 	 * in the {@link #keysToHash} list</li>
 	 * <li>
-	 * 5) Write the values to the {@link BufferedWriter}
+	 * 6) Write the values of the {@link #columnsToKeep} to the {@link BufferedWriter}
 	 * <li>
 	 */
 	public void processFile() {
@@ -239,8 +277,12 @@ public class DataProcessor {
 				String[] lineValues = currentLine.split(getDelimeter());
 				if (isHeader) {
 					createIndexMap(lineValues, headerKeyToIndexMap);
+					createIndexesToKeep(lineValues);
+					for (RowFilter rowFilter : rowFilters) {
+						rowFilter.resolveIndex(lineValues);
+					}
 					
-					String headerStr = convertToString(lineValues);
+					String headerStr = convertToString(keepColumns(lineValues));
 					
 					bw.write(headerStr);
 					bw.newLine();
@@ -250,11 +292,14 @@ public class DataProcessor {
 					}
 					isHeader = false;
 				} else {
+					if (!matchesRowFilters(lineValues)) {
+						continue;
+					}
 
 					String[] hashedValues = hashValues(lineValues,
 							stringToHashMapping);
 					
-					String hashedString = convertToString(hashedValues);
+					String hashedString = convertToString(keepColumns(hashedValues));
 					
 					bw.write(hashedString);
 					bw.newLine();
@@ -304,7 +349,8 @@ public class DataProcessor {
 		BufferedWriter result;
 
 		FileWriter fw = new FileWriter(filePath);
-		result = new BufferedWriter(fw);
+		result = getOutputBuffer() != null ? new BufferedWriter(fw, getOutputBuffer())
+				: new BufferedWriter(fw);
 		if(verbose) {
 			System.out.println("BufferedWriter created");
 		}
@@ -374,6 +420,73 @@ public class DataProcessor {
 		}
 	}
 
+	/**
+	 * Find the indexes of the {@link #columnsToKeep} in the header row, in the
+	 * order in which they were specified.
+	 * 
+	 * @param headerValues the values of the header row
+	 */
+	private void createIndexesToKeep(String[] headerValues) {
+		if (columnsToKeep == null || columnsToKeep.isEmpty()) {
+			indexesToKeep = null;
+			return;
+		}
+		indexesToKeep = new int[columnsToKeep.size()];
+		for (int i = 0; i < columnsToKeep.size(); i++) {
+			indexesToKeep[i] = RowFilter.indexOfColumn(columnsToKeep.get(i), headerValues);
+			if (indexesToKeep[i] < 0) {
+				throw new RuntimeException("Column " + columnsToKeep.get(i)
+						+ " is not present in the header row");
+			}
+		}
+	}
+
+	/**
+	 * Project the values of a row on the {@link #columnsToKeep}
+	 * 
+	 * @param values the values of the row
+	 * @return the values of the columns to keep, or the values themselves if
+	 *         all the columns are kept
+	 */
+	private String[] keepColumns(String[] values) {
+		if (indexesToKeep == null) {
+			return values;
+		}
+		String[] keptValues = new String[indexesToKeep.length];
+		for (int i = 0; i < indexesToKeep.length; i++) {
+			keptValues[i] = indexesToKeep[i] < values.length ? values[indexesToKeep[i]] : "";
+		}
+		return keptValues;
+	}
+
+	/**
+	 * Check whether a column ends up in the output file. Values of the columns
+	 * that are dropped are not hashed.
+	 * 
+	 * @param columnIndex the index of the column in the header row
+	 * @return true if the column is written to the output file
+	 */
+	private boolean isColumnKept(int columnIndex) {
+		if (indexesToKeep == null) {
+			return true;
+		}
+		for (int index : indexesToKeep) {
+			if (index == columnIndex) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchesRowFilters(String[] values) {
+		for (RowFilter rowFilter : rowFilters) {
+			if (!rowFilter.matches(values)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private String surroundWithQuotesIfRequired(String value) {
 		String newValue = value;
 		if(!newValue.startsWith(DOUBLE_QUOTE_SYMBOL)) {
@@ -394,16 +507,21 @@ public class DataProcessor {
 					"index value is greater than the total values on the line");
 		}
 		String parameterName = values[index];
-		if (valueNeedsHashing(parameterName)) {
+		// valueNeedsHashing also detects whether the values are quoted, so it
+		// has to be called whether or not the value column is kept
+		if (valueNeedsHashing(parameterName)
+				&& isColumnKept(headerKeyToIndexMap.get("PARAMETER_VALUE"))) {
 			String valueToHash = values[headerKeyToIndexMap
 					.get("PARAMETER_VALUE")];
 			String hashedValue = null;
 			if (stringValueToStringHashMapping.containsKey(valueToHash)) {
+				hashCacheHits++;
 				hashedValue = stringValueToStringHashMapping
 						.get(valueToHash);
 				hashedValue = surroundWithQuotesIfRequired(hashedValue);
 				hashedValues[headerKeyToIndexMap.get("PARAMETER_VALUE")] = hashedValue;
 			} else {
+				hashCacheMisses++;
 				hashedValue = HashGenerator
 						.generateHash(valueToHash, getHashingAlgo());
 				hashedValue = surroundWithQuotesIfRequired(hashedValue);
@@ -419,7 +537,9 @@ public class DataProcessor {
 				
 			}
 		}
-		hashSerialNumber(hashedValues, stringValueToStringHashMapping);
+		if (isColumnKept(headerKeyToIndexMap.get("SERIAL_NUMBER"))) {
+			hashSerialNumber(hashedValues, stringValueToStringHashMapping);
+		}
 		return hashedValues;
 	}
 	
@@ -435,11 +555,13 @@ public class DataProcessor {
 		//valueToHash = removeQuotesIfAny(valueToHash);
 		String hashedValue = null;
 		if (stringValueToStringHashMapping.containsKey(valueToHash)) {
+			hashCacheHits++;
 			hashedValue = stringValueToStringHashMapping
 					.get(valueToHash);
 			hashedValue = surroundWithQuotesIfRequired(hashedValue);
 			hashedValues[headerKeyToIndexMap.get("SERIAL_NUMBER")] = hashedValue;
 		} else {
+			hashCacheMisses++;
 			hashedValue = HashGenerator
 					.generateHash(valueToHash, getHashingAlgo());
 			hashedValue = surroundWithQuotesIfRequired(hashedValue);
@@ -494,6 +616,26 @@ public class DataProcessor {
 		this.inputBuffer = inputBuffer;
 	}
 
+	public Integer getOutputBuffer() {
+		return outputBuffer;
+	}
+
+	public void setOutputBuffer(Integer outputBuffer) {
+		this.outputBuffer = outputBuffer;
+	}
+
+	public String getOutputFilePath() {
+		return outputFilePath;
+	}
+
+	public long getHashCacheHits() {
+		return hashCacheHits;
+	}
+
+	public long getHashCacheMisses() {
+		return hashCacheMisses;
+	}
+
 	public Boolean getVerbose() {
 		return verbose;
 	}
@@ -513,6 +655,22 @@ public class DataProcessor {
 	public void setHashingAlgo(String hashingAlgo) {
 		this.hashingAlgo = hashingAlgo;
 	}
+
+	public List<String> getColumnsToKeep() {
+		return columnsToKeep;
+	}
+
+	public void setColumnsToKeep(List<String> columnsToKeep) {
+		this.columnsToKeep = columnsToKeep;
+	}
+
+	public List<RowFilter> getRowFilters() {
+		return rowFilters;
+	}
+
+	public void setRowFilters(List<RowFilter> rowFilters) {
+		this.rowFilters = rowFilters;
+	}
 	
 
 }
@@ -43,12 +43,37 @@ public class MainClass {
 				.desc(  "OPTIONAL.The input buffer size, as integer value, to read the portion of file in memory. If not specified, defaults to 10000 chars" )
 				.build();
 		
+		Option outputBufferSize   = Option.builder("outputBufferSize").argName("outputBufferSize")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The output buffer size, as integer value, used to write the output and mapping files. If not specified, defaults to 8192 chars" )
+				.build();
+		
 		Option help = new Option( "help", "OPTIONAL.print this message" );
 		
 		Option displayTimings = new Option( "displayTimings", "OPTIONAL.Display information about time taken by script in nano- and milli- seconds" );
 		
 		Option verbose = new Option( "verbose", "OPTIONAL.Display execution information" );
 		Option dryRun = new Option( "dryRun", "OPTIONAL.Do a dry run of the process before actually executing it." );
+		Option calibrate = new Option( "calibrate", "OPTIONAL.Process a sample of the input file with different buffer sizes and print the best settings and the estimated time to process the complete file." );
+		
+		Option calibrationSampleSize   = Option.builder("calibrationSampleSize").argName("calibrationSampleSize")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The size, in MB, of the head of the input file used as sample by calibrate. If not specified, defaults to 8 MB" )
+				.build();
+		
+		Option saveProfile   = Option.builder("saveProfile").argName("saveProfile")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The path of the profile file to save the settings recommended by calibrate to." )
+				.build();
+		
+		Option profile   = Option.builder("profile").argName("profile")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The path of a profile file, saved by calibrate, to load the settings from. Settings specified on the command line take precedence." )
+				.build();
 		
 		Option inputDataFile   = Option.builder("inputFilePath").argName("inputFilePath")
 				.required(true)
@@ -61,17 +86,36 @@ public class MainClass {
 				.hasArg()
 				.desc(  "OPTIONAL.The date time format used to tag the output and mapping files. If not specified, then defaults to yyyyMMddhhmmss" )
 				.build();
+		
+		Option keepColumns   = Option.builder("keepColumns").argName("keepColumns")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The comma separated list of header columns to write to the output file, in the order they should appear. If not specified, then all the columns are written." )
+				.build();
+		
+		Option rowFilter   = Option.builder("rowFilter").argName("rowFilter")
+				.required(false)
+				.hasArg()
+				.desc(  "OPTIONAL.The comma separated list of filters a row has to match to be written to the output file, e.g. PARAMETER_NAME^=Device.WiFi. Supported operators are =, !=, ^= (starts with), $= (ends with) and *= (contains). Rows that do not match are not hashed." )
+				.build();
 		Options options = new Options();
 		options.addOption(valueSeparator)
 			   .addOption(inputDataFile)
 			   .addOption(fieldsToHash)
 			   .addOption(hashingAlgo)
 			   .addOption(inputBufferSize)
+			   .addOption(outputBufferSize)
 			   .addOption(help)
 			   .addOption(displayTimings)
 			   .addOption(verbose)
 			   .addOption(dryRun).
-			   addOption(dateTimeFormat);
+			   addOption(dateTimeFormat)
+			   .addOption(keepColumns)
+			   .addOption(rowFilter)
+			   .addOption(calibrate)
+			   .addOption(calibrationSampleSize)
+			   .addOption(saveProfile)
+			   .addOption(profile);
 		
 		// create the parser
 	    CommandLineParser parser = new DefaultParser();
@@ -128,11 +172,17 @@ public class MainClass {
 	        
 	        DataProcessor dataProcessor = new DataProcessor(toHash);
 	        //DataProcessor dataProcessor = new DataProcessor(toHash);
+	        if(line.hasOption("profile")) {
+	        	Calibrator.loadProfile(line.getOptionValue("profile"), dataProcessor);
+	        }
 	        if(valSeparator != null) {
 	        	dataProcessor.setDelimeter(valSeparator);
 	        }
 	        if(inputBuffer != null) {
-	        	dataProcessor.setInputBuffer(Integer.getInteger(inputBuffer));
+	        	dataProcessor.setInputBuffer(Integer.parseInt(inputBuffer.trim()));
+	        }
+	        if(line.hasOption("outputBufferSize")) {
+	        	dataProcessor.setOutputBuffer(Integer.parseInt(line.getOptionValue("outputBufferSize").trim()));
 	        }
 	        if(line.hasOption("dateFormat")) {
 	        	dataProcessor.setDateFormat(line.getOptionValue("dateFormat"));
@@ -140,6 +190,18 @@ public class MainClass {
 	        if(hashingAlgor != null) {
 	        	dataProcessor.setHashingAlgo(hashingAlgor);
 	        }
+	        if(line.hasOption("keepColumns")) {
+	        	List<String> columns = new ArrayList<>();
+	        	for(String val : line.getOptionValue("keepColumns").split(",")) {
+	        		if(!val.trim().isEmpty()) {
+	        			columns.add(val.trim());
+	        		}
+	        	}
+	        	dataProcessor.setColumnsToKeep(columns);
+	        }
+	        if(line.hasOption("rowFilter")) {
+	        	dataProcessor.setRowFilters(RowFilter.parse(line.getOptionValue("rowFilter")));
+	        }
 	        
 	        dataProcessor.setFilePath(inputFilePath);
 	        if(line.hasOption("verbose")) {
@@ -147,11 +209,23 @@ public class MainClass {
 	        	System.out.println("File Path = " + dataProcessor.getFilePath());
 	        	System.out.println("Delimiter = " + dataProcessor.getDelimeter());
 	        	System.out.println("Input Buffer Size = " + dataProcessor.getInputBuffer());
+	        	System.out.println("Output Buffer Size = " + dataProcessor.getOutputBuffer());
 	        	System.out.println("Hashing Algo = " + dataProcessor.getHashingAlgo());
 	        	System.out.println("Fields To hash = " + dataProcessor.getKeysToHash());
+	        	System.out.println("Columns To keep = " + dataProcessor.getColumnsToKeep());
+	        	System.out.println("Row Filters = " + dataProcessor.getRowFilters());
 	        	dataProcessor.setVerbose(true);
 	        }
-	        if(line.hasOption("dryRun")) {
+	        if(line.hasOption("calibrate")) {
+	        	Calibrator calibrator = new Calibrator(dataProcessor);
+	        	if(line.hasOption("calibrationSampleSize")) {
+	        		calibrator.setSampleSizeInMB(Integer.parseInt(line.getOptionValue("calibrationSampleSize").trim()));
+	        	}
+	        	calibrator.calibrate();
+	        	if(line.hasOption("saveProfile")) {
+	        		calibrator.saveProfile(line.getOptionValue("saveProfile"));
+	        	}
+	        } else if(line.hasOption("dryRun")) {
 	        	dataProcessor.dryRun();
 	        } else {
 	        	dataProcessor.processFile();
@@ -0,0 +1,185 @@
+package org.easetech.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple predicate on a named header column, used by {@link DataProcessor}
+ * to decide whether a row should be written to the output file at all. Rows
+ * that do not match are dropped before any hashing happens.
+ * <p>
+ * An expression is of the form <code>COLUMN_NAME&lt;operator&gt;value</code>
+ * where the operator is one of :
+ * <ul>
+ * <li><code>^=</code> value of the column starts with the given value</li>
+ * <li><code>$=</code> value of the column ends with the given value</li>
+ * <li><code>*=</code> value of the column contains the given value</li>
+ * <li><code>!=</code> value of the column is not equal to the given value</li>
+ * <li><code>=</code> value of the column is equal to the given value</li>
+ * </ul>
+ * Surrounding double quotes are ignored while comparing.
+ */
+public class RowFilter {
+
+	/**
+	 * The supported operators. Two character operators are listed first so
+	 * that they win over the plain "=" found at the same position.
+	 */
+	private static final String[] OPERATORS = { "^=", "$=", "*=", "!=", "=" };
+
+	/**
+	 * Double quotes
+	 */
+	private static final String DOUBLE_QUOTE_SYMBOL = "\"";
+
+	/**
+	 * The name of the header column this filter applies to
+	 */
+	private final String columnName;
+
+	/**
+	 * The operator of this filter
+	 */
+	private final String operator;
+
+	/**
+	 * The value to compare the column value with
+	 */
+	private final String value;
+
+	/**
+	 * The index of {@link #columnName} in the header row. Populated by
+	 * {@link #resolveIndex(String[])} when the header line is read
+	 */
+	private int columnIndex = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param columnName
+	 * @param operator
+	 * @param value
+	 */
+	public RowFilter(String columnName, String operator, String value) {
+		this.columnName = columnName;
+		this.operator = operator;
+		this.value = value;
+	}
+
+	/**
+	 * Parse a comma separated list of filter expressions. A row needs to
+	 * match all of them in order to be kept.
+	 *
+	 * @param expressions comma separated filter expressions
+	 * @return the list of {@link RowFilter}
+	 */
+	public static List<RowFilter> parse(String expressions) {
+		List<RowFilter> filters = new ArrayList<>();
+		for (String expression : expressions.split(",")) {
+			if (expression.trim().isEmpty()) {
+				continue;
+			}
+			filters.add(parseExpression(expression.trim()));
+		}
+		return filters;
+	}
+
+	/**
+	 * Split an expression on the operator that occurs first in it, so that
+	 * the value may itself contain operator characters
+	 */
+	private static RowFilter parseExpression(String expression) {
+		String operator = null;
+		int operatorIndex = -1;
+		for (String op : OPERATORS) {
+			int index = expression.indexOf(op);
+			if (index > 0 && (operator == null || index < operatorIndex)) {
+				operator = op;
+				operatorIndex = index;
+			}
+		}
+		if (operator == null) {
+			throw new RuntimeException("Can not parse row filter expression : "
+					+ expression);
+		}
+		String name = expression.substring(0, operatorIndex).trim();
+		String val = expression.substring(operatorIndex + operator.length());
+		return new RowFilter(name, operator, removeQuotes(val));
+	}
+
+	/**
+	 * Find the index of {@link #columnName} in the header row.
+	 *
+	 * @param headerValues the values of the header row
+	 */
+	public void resolveIndex(String[] headerValues) {
+		columnIndex = indexOfColumn(columnName, headerValues);
+		if (columnIndex >= 0) {
+			return;
+		}
+		throw new RuntimeException("Row filter column " + columnName
+				+ " is not present in the header row");
+	}
+
+	/**
+	 * Check whether the given row matches this filter
+	 *
+	 * @param values the values of the row
+	 * @return true if the row should be kept
+	 */
+	public boolean matches(String[] values) {
+		if (columnIndex < 0 || columnIndex >= values.length) {
+			return false;
+		}
+		String columnValue = removeQuotes(values[columnIndex]);
+		switch (operator) {
+		case "^=":
+			return columnValue.startsWith(value);
+		case "$=":
+			return columnValue.endsWith(value);
+		case "*=":
+			return columnValue.contains(value);
+		case "!=":
+			return !columnValue.equals(value);
+		default:
+			return columnValue.equals(value);
+		}
+	}
+
+	/**
+	 * Find the index of a column in the header row. Surrounding double quotes
+	 * of the header values are ignored.
+	 *
+	 * @param columnName the name of the column
+	 * @param headerValues the values of the header row
+	 * @return the index of the column, or -1 if it is not present
+	 */
+	static int indexOfColumn(String columnName, String[] headerValues) {
+		for (int index = 0; index < headerValues.length; index++) {
+			if (removeQuotes(columnName).equals(removeQuotes(headerValues[index]))) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static String removeQuotes(String val) {
+		if (val.startsWith(DOUBLE_QUOTE_SYMBOL)) {
+			val = val.substring(1);
+		}
+		if (val.endsWith(DOUBLE_QUOTE_SYMBOL)) {
+			val = val.substring(0, val.length() - 1);
+		}
+		return val;
+	}
+
+	public String getColumnName() {
+		return columnName;
+	}
+
+	@Override
+	public String toString() {
+		return columnName + operator + value;
+	}
+
+}
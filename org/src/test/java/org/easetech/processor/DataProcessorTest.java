@@ -0,0 +1,89 @@
+package org.easetech.processor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DataProcessorTest {
+
+	private static final String HEADER = "SERIAL_NUMBER;PARAMETER_NAME;PARAMETER_VALUE;OTHER";
+
+	private static final List<String> ROWS = Arrays.asList(
+			"\"S1\";\"Device.WiFi.SSID\";\"home\";x",
+			"\"S2\";\"Device.LAN.MACAddress\";\"aa:bb\";y",
+			"\"S1\";\"Device.WiFi.Channel\";\"6\";z");
+
+	@Test
+	public void projectedRunWritesSameValuesAsFullRun() throws IOException {
+		List<String[]> full = process(HEADER, null, null);
+		List<String[]> projected = process(HEADER, Arrays.asList("SERIAL_NUMBER", "OTHER"), null);
+
+		assertEquals(full.size(), projected.size());
+		for (int row = 0; row < full.size(); row++) {
+			assertEquals(full.get(row)[0], projected.get(row)[0]);
+			assertEquals(full.get(row)[3], projected.get(row)[1]);
+		}
+	}
+
+	@Test
+	public void filteredRunWritesSameValuesAsFullRun() throws IOException {
+		List<String[]> full = process(HEADER, null, null);
+		List<String[]> filtered = process(HEADER, Arrays.asList("PARAMETER_NAME", "PARAMETER_VALUE"),
+				"PARAMETER_NAME^=Device.WiFi");
+
+		assertEquals(3, filtered.size());
+		assertEquals(Arrays.asList(full.get(1)[1], full.get(1)[2]), Arrays.asList(filtered.get(1)));
+		assertEquals(Arrays.asList(full.get(3)[1], full.get(3)[2]), Arrays.asList(filtered.get(2)));
+	}
+
+	@Test
+	public void quotedHeaderIsMatchedTheSameWayByBothOptions() throws IOException {
+		String quotedHeader = "SERIAL_NUMBER;PARAMETER_NAME;PARAMETER_VALUE;\"OTHER\"";
+		List<String[]> output = process(quotedHeader, Arrays.asList("OTHER"), "OTHER=y");
+
+		assertEquals(2, output.size());
+		assertEquals("y", output.get(1)[0]);
+	}
+
+	/**
+	 * Process the rows and return the values of the output file, header
+	 * included
+	 */
+	private List<String[]> process(String header, List<String> columnsToKeep, String rowFilter)
+			throws IOException {
+		File dir = Files.createTempDirectory("processor").toFile();
+		File input = new File(dir, "input.csv");
+		List<String> lines = new ArrayList<>();
+		lines.add(header);
+		lines.addAll(ROWS);
+		Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+
+		DataProcessor processor = new DataProcessor(Arrays.asList("SSID", "SerialNumber", "MACAddress"));
+		processor.setFilePath(input.getPath());
+		processor.setColumnsToKeep(columnsToKeep);
+		if (rowFilter != null) {
+			processor.setRowFilters(RowFilter.parse(rowFilter));
+		}
+		processor.processFile();
+
+		List<String[]> values = new ArrayList<>();
+		for (String line : Files.readAllLines(new File(processor.getOutputFilePath()).toPath(),
+				StandardCharsets.UTF_8)) {
+			values.add(line.split(";"));
+		}
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+		return values;
+	}
+
+}
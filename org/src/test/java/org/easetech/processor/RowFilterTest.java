@@ -0,0 +1,42 @@
+package org.easetech.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RowFilterTest {
+
+	private static final String[] HEADER = { "SERIAL_NUMBER", "PARAMETER_VALUE", "OTHER" };
+
+	@Test
+	public void valueMayContainOperatorCharacters() {
+		RowFilter filter = parseOne("OTHER=a*=b");
+		assertEquals("OTHER", filter.getColumnName());
+		assertTrue(filter.matches(new String[] { "S1", "x", "a*=b" }));
+		assertFalse(filter.matches(new String[] { "S1", "x", "a" }));
+
+		filter = parseOne("PARAMETER_VALUE=x^=y");
+		assertEquals("PARAMETER_VALUE", filter.getColumnName());
+		assertTrue(filter.matches(new String[] { "S1", "\"x^=y\"", "z" }));
+	}
+
+	@Test
+	public void twoCharacterOperatorWinsOverEquals() {
+		RowFilter filter = parseOne("OTHER!=a=b");
+		assertEquals("OTHER", filter.getColumnName());
+		assertTrue(filter.matches(new String[] { "S1", "x", "a" }));
+		assertFalse(filter.matches(new String[] { "S1", "x", "a=b" }));
+	}
+
+	private RowFilter parseOne(String expression) {
+		List<RowFilter> filters = RowFilter.parse(expression);
+		assertEquals(1, filters.size());
+		filters.get(0).resolveIndex(HEADER);
+		return filters.get(0);
+	}
+
+}